@@ -48,7 +48,9 @@ public class AnnotationExchangeExtension implements QuPathExtension{
 
     public static void addQuPathCommands(final QuPathGUI qupath) {
         ImportAnnotationServiceJSON importJSONAnnotation = new ImportAnnotationServiceJSON(qupath);
+        ImportAnnotationServiceJSON importRepairedJSONAnnotation = new ImportAnnotationServiceJSON(qupath, true);
         ExportAnnotationServiceJSON exportJSONAnnotation = new ExportAnnotationServiceJSON(qupath);
+        ExportAnnotationServiceJSON exportAllJSONAnnotation = new ExportAnnotationServiceJSON(qupath, true);
 
         // Add buttons to toolbar
         qupath.addToolbarSeparator();
@@ -61,7 +63,9 @@ public class AnnotationExchangeExtension implements QuPathExtension{
             ContextMenu popup = new ContextMenu();
             popup.getItems().addAll(
                 addQuPathMenuItem(importJSONAnnotation, importJSONAnnotation.commandName()),
-                addQuPathMenuItem(exportJSONAnnotation, exportJSONAnnotation.commandName())
+                addQuPathMenuItem(importRepairedJSONAnnotation, importRepairedJSONAnnotation.commandName()),
+                addQuPathMenuItem(exportJSONAnnotation, exportJSONAnnotation.commandName()),
+                addQuPathMenuItem(exportAllJSONAnnotation, exportAllJSONAnnotation.commandName())
             );
             btnAnnotationExchange.setOnMouseClicked(e -> {
                 popup.show(btnAnnotationExchange, e.getScreenX(), e.getScreenY());
@@ -79,6 +83,15 @@ public class AnnotationExchangeExtension implements QuPathExtension{
                     PathIconFactory.PathIcons.ANNOTATIONS
                 )
             );
+            qupath.addToolbarCommand(
+                importRepairedJSONAnnotation.commandName(),
+                importRepairedJSONAnnotation,
+                PathIconFactory.createNode(
+                    QuPathGUI.iconSize,
+                    QuPathGUI.iconSize,
+                    PathIconFactory.PathIcons.ANNOTATIONS
+                )
+            );
             qupath.addToolbarCommand(
                 exportJSONAnnotation.commandName(),
                 exportJSONAnnotation,
@@ -88,13 +101,33 @@ public class AnnotationExchangeExtension implements QuPathExtension{
                     PathIconFactory.PathIcons.ANNOTATIONS
                 )
             );
+            qupath.addToolbarCommand(
+                exportAllJSONAnnotation.commandName(),
+                exportAllJSONAnnotation,
+                PathIconFactory.createNode(
+                    QuPathGUI.iconSize,
+                    QuPathGUI.iconSize,
+                    PathIconFactory.PathIcons.ANNOTATIONS
+                )
+            );
         }
 
+        qupath.getPreferencePanel().addPropertyPreference(
+            ImportAnnotationServiceJSON.createMissingClassesProperty(),
+            Boolean.class,
+            "Create missing classes on import",
+            "Annotation Exchange",
+            "Create new classes for imported annotation labels that do not match an existing class, " +
+                "instead of importing those annotations without a class"
+        );
+
         Menu menuExtension = qupath.getMenu("Extensions>Annotations Exchange", true);
         QuPathGUI.addMenuItems(
             menuExtension,
             addQuPathMenuItem(importJSONAnnotation, importJSONAnnotation.commandName()),
-            addQuPathMenuItem(exportJSONAnnotation, exportJSONAnnotation.commandName())
+            addQuPathMenuItem(importRepairedJSONAnnotation, importRepairedJSONAnnotation.commandName()),
+            addQuPathMenuItem(exportJSONAnnotation, exportJSONAnnotation.commandName()),
+            addQuPathMenuItem(exportAllJSONAnnotation, exportAllJSONAnnotation.commandName())
         );
     }
 
@@ -24,7 +24,8 @@ public class ExportAnnotationServiceJSON implements PathCommand{
 
     private QuPathGUI qupath;
     final private static Logger logger = LoggerFactory.getLogger(ImportAnnotationServiceJSON.class);
-    private final String commandName = "Export JSON Annotation";
+    private final String commandName;
+    private final boolean exportAllAnnotations;
 
     /**
      * @return Returns the commandName assigned to this class
@@ -34,7 +35,20 @@ public class ExportAnnotationServiceJSON implements PathCommand{
     }
 
     public ExportAnnotationServiceJSON(QuPathGUI qupath){
+        this(qupath, false);
+    }
+
+    /**
+     * @param qupath The QuPath instance to export annotations from
+     * @param exportAllAnnotations If true, every annotation in the hierarchy is exported, without requiring the user
+     *                             to select them first
+     */
+    public ExportAnnotationServiceJSON(QuPathGUI qupath, boolean exportAllAnnotations){
         this.qupath = qupath;
+        this.exportAllAnnotations = exportAllAnnotations;
+        this.commandName = exportAllAnnotations
+            ? "Export All JSON Annotations"
+            : "Export JSON Annotation";
     }
 
     public Collection<Class<? extends PathObject>> getSupportedParentObjectClasses() {
@@ -52,21 +66,44 @@ public class ExportAnnotationServiceJSON implements PathCommand{
 
         PluginRunnerFX runner = new PluginRunnerFX(qupath,false);
 
-        Collection<PathObject> selectedObjects = runner.getImageData()
-            .getHierarchy()
-            .getSelectionModel()
-            .getSelectedObjects();
-
-        Collection<Class<? extends PathObject>> supported = getSupportedParentObjectClasses();
-
-        Collection<? extends PathObject> objects = PathObjectTools.getSupportedObjects(selectedObjects, supported);
-
-        if (objects.size() == 0) {
-            DisplayHelpers.showErrorMessage(
-                "No Annotations Selected",
-                "Please select annotations to export in the \"Annotations\" tab"
-            );
-            return;
+        /**
+         * When exporting everything, the hierarchy is walked lazily by the plugin, so the annotations are not
+         * collected here; the walk stops as soon as the first annotation is found
+         */
+        if (exportAllAnnotations) {
+            boolean hasAnnotations = false;
+            for (PathObject pathObject : PathObjectHierarchyIterator.descendants(
+                runner.getImageData().getHierarchy().getRootObject()
+            )) {
+                if (pathObject.isAnnotation()) {
+                    hasAnnotations = true;
+                    break;
+                }
+            }
+            if (!hasAnnotations) {
+                DisplayHelpers.showErrorMessage(
+                    "No Annotations Found",
+                    "There are no annotations to export in this image"
+                );
+                return;
+            }
+        } else {
+            Collection<PathObject> selectedObjects = runner.getImageData()
+                .getHierarchy()
+                .getSelectionModel()
+                .getSelectedObjects();
+
+            Collection<Class<? extends PathObject>> supported = getSupportedParentObjectClasses();
+
+            Collection<? extends PathObject> objects = PathObjectTools.getSupportedObjects(selectedObjects, supported);
+
+            if (objects.size() == 0) {
+                DisplayHelpers.showErrorMessage(
+                    "No Annotations Selected",
+                    "Please select annotations to export in the \"Annotations\" tab"
+                );
+                return;
+            }
         }
 
         FileChooser fileChooser = new FileChooser();
@@ -88,7 +125,11 @@ public class ExportAnnotationServiceJSON implements PathCommand{
             return;
         }
 
-        ExportAnnotationServiceJSONPlugin exportJSON = new ExportAnnotationServiceJSONPlugin(inputFile, slideName);
+        ExportAnnotationServiceJSONPlugin exportJSON = new ExportAnnotationServiceJSONPlugin(
+            inputFile,
+            slideName,
+            exportAllAnnotations
+        );
         exportJSON.runPlugin(runner, null);
     }
 }
@@ -1,11 +1,16 @@
 package qupath.AnnotationExchangeExtension;
 
 import com.google.gson.*;
+import com.google.gson.stream.JsonWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import qupath.lib.common.ColorTools;
 import qupath.lib.geom.Point2;
 import qupath.lib.images.ImageData;
 import qupath.lib.objects.*;
+import qupath.lib.objects.classes.PathClass;
 import qupath.lib.objects.helpers.PathObjectTools;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.plugins.AbstractPlugin;
 import qupath.lib.plugins.PluginRunner;
 import qupath.lib.roi.PathROIToolsAwt;
@@ -14,18 +19,43 @@ import qupath.lib.roi.interfaces.PathShape;
 
 import java.awt.geom.Area;
 import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
-import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.List;
 import java.util.UUID;
 
 public class ExportAnnotationServiceJSONPlugin extends AbstractPlugin<BufferedImage> {
 
+    final private static Logger logger = LoggerFactory.getLogger(ExportAnnotationServiceJSONPlugin.class);
     private File annotationFile;
     private String lastMessage = "";
     private String fileName = "";
+    private boolean exportAllAnnotations = false;
+    private int numExported = 0;
+    private int numSkipped = 0;
+
+    /**
+     * The values of an annotation that are written to the file. These are read while the hierarchy is locked, so
+     * that the annotation can be encoded and written after the lock has been released. ROIs are immutable, so
+     * holding on to the ROI itself is enough.
+     */
+    private static class AnnotationSnapshot {
+        final PathShape pathShape;
+        final String name;
+        final Integer colorRGB;
+        final PathClass pathClass;
+
+        AnnotationSnapshot(PathObject annotation) {
+            this.pathShape = (PathShape) annotation.getROI();
+            this.name = annotation.getName();
+            this.colorRGB = annotation.getColorRGB();
+            this.pathClass = annotation.getPathClass();
+        }
+    }
 
     public ExportAnnotationServiceJSONPlugin( File annotationFile) {
         this.annotationFile = annotationFile;
@@ -36,6 +66,18 @@ public class ExportAnnotationServiceJSONPlugin extends AbstractPlugin<BufferedIm
         this.fileName = fileName;
     }
 
+    /**
+     * @param annotationFile The file the annotations are written to
+     * @param fileName The name of the slide the annotations belong to
+     * @param exportAllAnnotations If true, every annotation in the hierarchy is exported rather than only the
+     *                             selected annotations
+     */
+    public ExportAnnotationServiceJSONPlugin(File annotationFile, String fileName, boolean exportAllAnnotations) {
+        this.annotationFile = annotationFile;
+        this.fileName = fileName;
+        this.exportAllAnnotations = exportAllAnnotations;
+    }
+
 
     @Override
     protected void addWorkflowStep(final ImageData<BufferedImage> imageData, final String arg) {
@@ -78,8 +120,8 @@ public class ExportAnnotationServiceJSONPlugin extends AbstractPlugin<BufferedIm
         Runnable runnable = new Runnable() {
             @Override
             public void run() {
-                boolean successfulRead = writeJSONAnnotations(annotationFile,imageData);
-                if(!successfulRead){lastMessage = "JSON annotations not successfully read";}
+                // writeJSONAnnotations sets lastMessage itself when it fails
+                writeJSONAnnotations(annotationFile,imageData);
             }
         };
         tasks.add(runnable);
@@ -92,18 +134,6 @@ public class ExportAnnotationServiceJSONPlugin extends AbstractPlugin<BufferedIm
     protected void postprocess(final PluginRunner<BufferedImage> pluginRunner) {}
 
     private boolean writeJSONAnnotations(File outputFile, ImageData<BufferedImage> imageData ) {
-        //Make filter for supported objects (annotations in this case)
-        Collection<Class<? extends PathObject>> supported = getSupportedParentObjectClasses();
-
-        //Get the set of selected objects
-        Collection<PathObject> selectedObjects = imageData
-                .getHierarchy()
-                .getSelectionModel()
-                .getSelectedObjects();
-
-        //Filter selected objects for annotations
-        Collection<? extends PathObject> objects = PathObjectTools.getSupportedObjects(selectedObjects, supported);
-
         /**
          * The data-structure of the exported JSON:
          * {
@@ -112,6 +142,13 @@ public class ExportAnnotationServiceJSONPlugin extends AbstractPlugin<BufferedIm
          *     {
          *       "uid": "some-uid",
          *       "name": "some-name",
+         *       // Shared by every dictionary written for the same QuPath annotation, since an annotation made of
+         *       // several separate pieces is written as one dictionary per piece
+         *       "groupUid": "some-group-uid",
+         *       // Only present when exporting all annotations, and the annotation is nested inside another annotation.
+         *       // This is the groupUid of the enclosing annotation. It is not read back by the importer, which
+         *       // nests imported annotations by their geometry instead.
+         *       "parentUid": "group-uid-of-parent-annotation",
          *       // http://paperjs.org/reference/path/
          *       "path": {
          *           "applyMatrix": true,
@@ -136,105 +173,257 @@ public class ExportAnnotationServiceJSONPlugin extends AbstractPlugin<BufferedIm
          *     }
          *   ]
          * }
+         *
+         * Each dictionary is written to the file as soon as it is built, so the whole document is never held in
+         * memory at once. The document is written to a temporary file that only replaces the output file once it is
+         * complete, so a failed export never leaves a truncated JSON file behind.
+         *
+         * Only annotations with an area (i.e. not points or lines) can be written as PaperJS paths; any others are
+         * skipped and counted.
          */
+        Gson gson = new GsonBuilder().create();
+        File tempFile = null;
+        numExported = 0;
+        numSkipped = 0;
         try {
-            JsonObject objectToExport = new JsonObject();
-            JsonArray dictionariesArray = new JsonArray();
-
-            for(PathObject annotation : objects) {
-                PathShape pathShape = (PathShape)annotation.getROI();
-                Area area = PathROIToolsAwt.getArea(pathShape);
-                PolygonROI[][] annotationPolygons = PathROIToolsAwt.splitAreaToPolygons(area);
-
-                for(int i = 0; i<annotationPolygons[1].length; i++) {
-                    JsonObject jsonAnnotation = new JsonObject();
-
-                    final String uid = UUID.randomUUID().toString();
-
-                    final String name = annotation.getName() != null
-                      ? annotation.getName()
-                      : uid;
-
-                    jsonAnnotation.addProperty("uid", uid);
-                    jsonAnnotation.addProperty("name", name);
-
-                    JsonArray pathCoords = new JsonArray();
-
-                    for (Point2 point : annotationPolygons[1][i].getPolygonPoints()) {
-                        JsonArray segment = new JsonArray();
-                        JsonArray pathCoordPoint = new JsonArray();
-                        pathCoordPoint.add(point.getX());
-                        pathCoordPoint.add(point.getY());
-                        segment.add(pathCoordPoint);
-                        /**
-                         * In order to mimic the data-structure of a PaperJS.segment, there needs to be two additional
-                         * arrays
-                         *
-                         * Since this data is not used, they can contain zeroed coordinates
-                         *
-                         * http://paperjs.org/reference/segment/#segment
-                         */
-                        JsonArray zeroArray = new JsonArray();
-                        zeroArray.add(0.0);
-                        zeroArray.add(0.0);
-                        segment.add(zeroArray);
-                        segment.add(zeroArray);
-
-                        pathCoords.add(segment);
-                    }
-
-                    JsonObject pathProperties = new JsonObject();
-                    pathProperties.addProperty("applyMatrix", true);
-                    pathProperties.add("segments", pathCoords);
-                    pathProperties.addProperty("closed", true);
-                    JsonArray fillColour = new JsonArray();
-
-                    JsonArray strokeColor = new JsonArray();
-
-                    /**
-                     * PathObject.color is null by default, thus the color of the annotation needs to be manually set if
-                     * the user used the default color of RGB(255, 0, 0) (i.e. Red)
-                     */
-                    final int annotationRGB = annotation.getColorRGB() != null
-                        ? annotation.getColorRGB()
-                        : 16711680;
-                    final double redValue = (double) (ColorTools.red(annotationRGB)) / 255.0;
-                    final double greenValue = (double) (ColorTools.green(annotationRGB)) / 255.0;
-                    final double blueValue = (double) (ColorTools.blue(annotationRGB)) / 255.0;
-                    fillColour.add(redValue);
-                    fillColour.add(greenValue);
-                    fillColour.add(blueValue);
-                    fillColour.add(0.5);
-                    strokeColor.add(redValue);
-                    strokeColor.add(greenValue);
-                    strokeColor.add(blueValue);
-
-                    pathProperties.add("strokeColor", strokeColor);
-
-                    pathProperties.add("fillColor", fillColour);
-                    pathProperties.addProperty("strokeScaling", false);
-
-                    jsonAnnotation.add("path", pathProperties);
-
-                    String annotationPathClassName = annotation.getPathClass() != null
-                        ? annotation.getPathClass().getName()
-                        : "Tumor";
-                    jsonAnnotation.addProperty("label", annotationPathClassName);
-
-                    dictionariesArray.add(jsonAnnotation);
+            // A fixed prefix is used, since createTempFile rejects prefixes shorter than 3 characters
+            tempFile = File.createTempFile("annotations", ".tmp", outputFile.getAbsoluteFile().getParentFile());
+
+            try (JsonWriter jsonWriter = new JsonWriter(new BufferedWriter(new FileWriter(tempFile)))) {
+                jsonWriter.beginObject();
+                jsonWriter.name("SourceSlide").value(this.fileName + ".svs");
+                jsonWriter.name("dictionaries").beginArray();
+
+                if (exportAllAnnotations) {
+                    writeAllAnnotations(gson, jsonWriter, imageData);
+                } else {
+                    writeSelectedAnnotations(gson, jsonWriter, imageData);
+                }
+
+                jsonWriter.endArray();
+                jsonWriter.endObject();
+            }
+
+            Files.move(tempFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+            lastMessage = String.format("Exported %d annotations", numExported);
+            if (numSkipped > 0) {
+                lastMessage += String.format(", %d skipped because they are points, lines or empty", numSkipped);
+            }
+            logger.info(lastMessage);
+        } catch(java.io.IOException | RuntimeException ex){
+            logger.error("Error writing JSON annotations", ex);
+            lastMessage = "Error Writing JSON File";
+            if (tempFile != null && !tempFile.delete() && tempFile.exists()) {
+                logger.warn("Unable to delete temporary file {}", tempFile);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private void writeSelectedAnnotations(
+            Gson gson,
+            JsonWriter jsonWriter,
+            ImageData<BufferedImage> imageData
+    ) throws java.io.IOException {
+        //Make filter for supported objects (annotations in this case)
+        Collection<Class<? extends PathObject>> supported = getSupportedParentObjectClasses();
+
+        //Get the set of selected objects
+        Collection<PathObject> selectedObjects = imageData
+                .getHierarchy()
+                .getSelectionModel()
+                .getSelectedObjects();
+
+        //Filter selected objects for annotations
+        Collection<? extends PathObject> objects = PathObjectTools.getSupportedObjects(selectedObjects, supported);
+
+        for(PathObject annotation : objects) {
+            if (!(annotation.getROI() instanceof PathShape)) {
+                numSkipped++;
+                continue;
+            }
+            writeAnnotation(gson, jsonWriter, new AnnotationSnapshot(annotation), UUID.randomUUID().toString(), null);
+        }
+    }
+
+    /**
+     * Walks the hierarchy depth-first and writes every annotation as it is visited, without first collecting them.
+     *
+     * Nesting is kept by writing the groupUid of the closest enclosing annotation as "parentUid". Only the chain of
+     * annotations above the one currently being written is remembered, so memory use depends on how deeply the
+     * annotations are nested, not on how many there are.
+     *
+     * The hierarchy's lock is only held while stepping to the next object and copying what is needed from it;
+     * splitting the ROI into polygons and writing to disk happen after it is released, so the GUI is not blocked
+     * for the length of a large export. PathObjectHierarchyIterator copies each list of children as it reaches
+     * them, so changes made to the hierarchy between steps do not break the walk. Objects added after their parent
+     * was reached are not exported, and objects removed after that are still exported.
+     */
+    private void writeAllAnnotations(
+            Gson gson,
+            JsonWriter jsonWriter,
+            ImageData<BufferedImage> imageData
+    ) throws java.io.IOException {
+        Deque<PathObject> ancestors = new ArrayDeque<>();
+        Deque<String> ancestorUids = new ArrayDeque<>();
+        PathObjectHierarchy hierarchy = imageData.getHierarchy();
+
+        PathObjectHierarchyIterator iterator;
+        synchronized (hierarchy) {
+            iterator = new PathObjectHierarchyIterator(hierarchy.getRootObject());
+        }
+
+        while (true) {
+            PathObject pathObject;
+            AnnotationSnapshot snapshot;
+            synchronized (hierarchy) {
+                if (!iterator.hasNext()) {
+                    break;
+                }
+                pathObject = iterator.next();
+                if (!pathObject.isAnnotation()) {
+                    continue;
+                }
+                if (!(pathObject.getROI() instanceof PathShape)) {
+                    numSkipped++;
+                    continue;
                 }
-                objectToExport.addProperty("SourceSlide", this.fileName + ".svs");
-                objectToExport.add("dictionaries", dictionariesArray);
+
+                // Depth-first order means any annotation that does not enclose this one has been fully visited
+                while (!ancestors.isEmpty() && !isAncestor(ancestors.peek(), pathObject)) {
+                    ancestors.pop();
+                    ancestorUids.pop();
+                }
+
+                snapshot = new AnnotationSnapshot(pathObject);
+            }
+
+            String groupUid = UUID.randomUUID().toString();
+            if (writeAnnotation(gson, jsonWriter, snapshot, groupUid, ancestorUids.peek())) {
+                ancestors.push(pathObject);
+                ancestorUids.push(groupUid);
+            }
+        }
+    }
+
+    private static boolean isAncestor(PathObject ancestor, PathObject pathObject) {
+        for (PathObject parent = pathObject.getParent(); parent != null; parent = parent.getParent()) {
+            if (parent == ancestor) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes one dictionary per polygon making up the given annotation.
+     *
+     * @param gson Used to serialize each dictionary to the writer
+     * @param jsonWriter The writer the dictionaries are appended to
+     * @param annotation The values of the annotation to write
+     * @param groupUid The uid shared by every dictionary written for this annotation
+     * @param parentUid The groupUid of the enclosing annotation, or null if it should not be written
+     * @return True if at least one dictionary was written, false if the annotation had no polygons
+     * @throws java.io.IOException If the dictionaries could not be written
+     */
+    private boolean writeAnnotation(
+            Gson gson,
+            JsonWriter jsonWriter,
+            AnnotationSnapshot annotation,
+            String groupUid,
+            String parentUid
+    ) throws java.io.IOException {
+        Area area = PathROIToolsAwt.getArea(annotation.pathShape);
+        PolygonROI[][] annotationPolygons = PathROIToolsAwt.splitAreaToPolygons(area);
+
+        for(int i = 0; i<annotationPolygons[1].length; i++) {
+            JsonObject jsonAnnotation = new JsonObject();
+
+            final String uid = UUID.randomUUID().toString();
+
+            final String name = annotation.name != null
+              ? annotation.name
+              : uid;
+
+            jsonAnnotation.addProperty("uid", uid);
+            jsonAnnotation.addProperty("name", name);
+            jsonAnnotation.addProperty("groupUid", groupUid);
+            if (parentUid != null) {
+                jsonAnnotation.addProperty("parentUid", parentUid);
+            }
+
+            JsonArray pathCoords = new JsonArray();
+
+            for (Point2 point : annotationPolygons[1][i].getPolygonPoints()) {
+                JsonArray segment = new JsonArray();
+                JsonArray pathCoordPoint = new JsonArray();
+                pathCoordPoint.add(point.getX());
+                pathCoordPoint.add(point.getY());
+                segment.add(pathCoordPoint);
+                /**
+                 * In order to mimic the data-structure of a PaperJS.segment, there needs to be two additional
+                 * arrays
+                 *
+                 * Since this data is not used, they can contain zeroed coordinates
+                 *
+                 * http://paperjs.org/reference/segment/#segment
+                 */
+                JsonArray zeroArray = new JsonArray();
+                zeroArray.add(0.0);
+                zeroArray.add(0.0);
+                segment.add(zeroArray);
+                segment.add(zeroArray);
+
+                pathCoords.add(segment);
             }
 
-            Gson gson = new GsonBuilder().create();
-            Writer writer = new FileWriter(outputFile);
-            gson.toJson(objectToExport,writer);
-            writer.close();
-        } catch(java.io.IOException ex){
-            lastMessage = "Error Reading JSON File";
+            JsonObject pathProperties = new JsonObject();
+            pathProperties.addProperty("applyMatrix", true);
+            pathProperties.add("segments", pathCoords);
+            pathProperties.addProperty("closed", true);
+            JsonArray fillColour = new JsonArray();
+
+            JsonArray strokeColor = new JsonArray();
+
+            /**
+             * PathObject.color is null by default, thus the color of the annotation needs to be manually set if
+             * the user used the default color of RGB(255, 0, 0) (i.e. Red)
+             */
+            final int annotationRGB = annotation.colorRGB != null
+                ? annotation.colorRGB
+                : 16711680;
+            final double redValue = (double) (ColorTools.red(annotationRGB)) / 255.0;
+            final double greenValue = (double) (ColorTools.green(annotationRGB)) / 255.0;
+            final double blueValue = (double) (ColorTools.blue(annotationRGB)) / 255.0;
+            fillColour.add(redValue);
+            fillColour.add(greenValue);
+            fillColour.add(blueValue);
+            fillColour.add(0.5);
+            strokeColor.add(redValue);
+            strokeColor.add(greenValue);
+            strokeColor.add(blueValue);
+
+            pathProperties.add("strokeColor", strokeColor);
+
+            pathProperties.add("fillColor", fillColour);
+            pathProperties.addProperty("strokeScaling", false);
+
+            jsonAnnotation.add("path", pathProperties);
+
+            String annotationPathClassName = annotation.pathClass != null
+                ? annotation.pathClass.getName()
+                : "Tumor";
+            jsonAnnotation.addProperty("label", annotationPathClassName);
+
+            gson.toJson(jsonAnnotation, jsonWriter);
+        }
+        if (annotationPolygons[1].length == 0) {
+            numSkipped++;
             return false;
         }
+        numExported++;
         return true;
     }
 }
@@ -1,11 +1,15 @@
 package qupath.AnnotationExchangeExtension;
 
+import javafx.application.Platform;
+import javafx.beans.property.BooleanProperty;
 import javafx.stage.FileChooser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.commands.interfaces.PathCommand;
+import qupath.lib.gui.prefs.PathPrefs;
 import qupath.lib.gui.viewer.QuPathViewer;
+import qupath.lib.objects.classes.PathClass;
 import qupath.lib.plugins.PluginRunnerFX;
 
 import java.io.File;
@@ -14,7 +18,24 @@ public class ImportAnnotationServiceJSON implements PathCommand{
 
     private QuPathGUI qupath;
     final private static Logger logger = LoggerFactory.getLogger(ImportAnnotationServiceJSON.class);
-    private final String commandName = "Import JSON Annotation";
+    private final String commandName;
+    private final boolean repairGeometry;
+
+    /**
+     * If true, labels in an imported file that do not match an existing class are created as new classes; otherwise
+     * annotations with those labels are imported without a class. Set in the QuPath preferences.
+     */
+    private static final BooleanProperty createMissingClassesProperty = PathPrefs.createPersistentPreference(
+        "annotationExchangeCreateMissingClasses",
+        false
+    );
+
+    /**
+     * @return The preference controlling whether imports create classes for labels that do not exist yet
+     */
+    public static BooleanProperty createMissingClassesProperty() {
+        return createMissingClassesProperty;
+    }
 
     /**
      * @return Returns the commandName assigned to this class
@@ -24,7 +45,19 @@ public class ImportAnnotationServiceJSON implements PathCommand{
     }
 
     public ImportAnnotationServiceJSON(QuPathGUI qupath){
+        this(qupath, false);
+    }
+
+    /**
+     * @param qupath The QuPath instance to import annotations into
+     * @param repairGeometry If true, polygons are checked and repaired (or dropped) before they are imported
+     */
+    public ImportAnnotationServiceJSON(QuPathGUI qupath, boolean repairGeometry){
         this.qupath = qupath;
+        this.repairGeometry = repairGeometry;
+        this.commandName = repairGeometry
+            ? "Import JSON Annotation (Repair Geometry)"
+            : "Import JSON Annotation";
     }
 
     public void run(){
@@ -48,7 +81,19 @@ public class ImportAnnotationServiceJSON implements PathCommand{
         }
 
         PluginRunnerFX runner = new PluginRunnerFX(qupath,false);
-        ImportAnnotationServiceJSONPlugin importJSON = new ImportAnnotationServiceJSONPlugin(inputFile);
+        ImportAnnotationServiceJSONPlugin importJSON = new ImportAnnotationServiceJSONPlugin(
+            inputFile,
+            repairGeometry,
+            createMissingClassesProperty.get()
+        );
+        // Classes made by PathClassFactory are not offered in the GUI until they are added to the available classes
+        importJSON.setOnPathClassesCreated(pathClasses -> Platform.runLater(() -> {
+            for (PathClass pathClass : pathClasses) {
+                if (!qupath.getAvailablePathClasses().contains(pathClass)) {
+                    qupath.getAvailablePathClasses().add(pathClass);
+                }
+            }
+        }));
         importJSON.runPlugin(runner, null);
     }
 }
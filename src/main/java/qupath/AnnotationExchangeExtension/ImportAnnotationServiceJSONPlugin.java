@@ -5,29 +5,82 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.stream.JsonReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import qupath.lib.images.ImageData;
 import qupath.lib.objects.*;
-import qupath.lib.objects.classes.PathClassFactory;
+import qupath.lib.objects.classes.PathClass;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.plugins.AbstractPlugin;
 import qupath.lib.plugins.PluginRunner;
 import qupath.lib.roi.LineROI;
 import qupath.lib.roi.PointsROI;
+import qupath.lib.roi.PathROIToolsAwt;
 import qupath.lib.roi.PolygonROI;
+import qupath.lib.roi.interfaces.PathShape;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileReader;
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
 
 public class ImportAnnotationServiceJSONPlugin extends AbstractPlugin<BufferedImage> {
+    final private static Logger logger = LoggerFactory.getLogger(ImportAnnotationServiceJSONPlugin.class);
     private File annotationFile;
     private String lastMessage = "";
+    private boolean repairGeometry = false;
+    private boolean createMissingClasses = false;
+    private Consumer<List<PathClass>> onPathClassesCreated = null;
 
     public ImportAnnotationServiceJSONPlugin(File annotationFile) {
         this.annotationFile = annotationFile;
     }
 
+    /**
+     * @param annotationFile The JSON file to import annotations from
+     * @param repairGeometry If true, polygons are checked before import; duplicate vertices and self-intersections
+     *                       are repaired, and polygons that cannot be repaired are dropped
+     */
+    public ImportAnnotationServiceJSONPlugin(File annotationFile, boolean repairGeometry) {
+        this.annotationFile = annotationFile;
+        this.repairGeometry = repairGeometry;
+    }
+
+    /**
+     * @param annotationFile The JSON file to import annotations from
+     * @param repairGeometry If true, polygons are checked before import; duplicate vertices and self-intersections
+     *                       are repaired, and polygons that cannot be repaired are dropped
+     * @param createMissingClasses If true, labels that do not match an existing PathClass are created, rather than
+     *                             the annotation being left unclassified
+     */
+    public ImportAnnotationServiceJSONPlugin(File annotationFile, boolean repairGeometry, boolean createMissingClasses) {
+        this.annotationFile = annotationFile;
+        this.repairGeometry = repairGeometry;
+        this.createMissingClasses = createMissingClasses;
+    }
+
+    /**
+     * @param onPathClassesCreated Called after an import that created new PathClasses for labels that did not
+     *                             already exist, with the classes that were created. It is called on the thread
+     *                             running the import.
+     */
+    public void setOnPathClassesCreated(Consumer<List<PathClass>> onPathClassesCreated) {
+        this.onPathClassesCreated = onPathClassesCreated;
+    }
+
+    /**
+     * The values read from a single dictionary in the JSON file, before it is turned into a PathAnnotationObject
+     */
+    private static class ParsedAnnotation {
+        int labelId;
+        String uid;
+        int colorRGB;
+        PolygonValidator.Polygon vertices;
+        PolygonValidator.Result validation = PolygonValidator.Result.VALID;
+    }
+
     @Override
     protected void addWorkflowStep(final ImageData<BufferedImage> imageData, final String arg) {
         // Do nothin
@@ -84,6 +137,9 @@ public class ImportAnnotationServiceJSONPlugin extends AbstractPlugin<BufferedIm
 
     private boolean readJSONAnnotations(File inputFile, ImageData imageData ) {
         PathObjectHierarchy hierarchy = imageData.getHierarchy();
+        LabelDictionary labelDictionary = new LabelDictionary(createMissingClasses);
+        int numImported = 0;
+        int numUnclassified = 0;
 
         try {
             JsonReader jsonReader = new JsonReader(new FileReader(inputFile));
@@ -93,95 +149,193 @@ public class ImportAnnotationServiceJSONPlugin extends AbstractPlugin<BufferedIm
 
             JsonArray jsonAnnotations = jsonAnnotationData.get("dictionaries").getAsJsonArray();
 
+            /**
+             * Records are only held on to when their geometry is being checked; otherwise each annotation is added
+             * to the hierarchy as soon as it has been parsed
+             */
+            List<ParsedAnnotation> parsedAnnotations = repairGeometry
+                ? new ArrayList<>(jsonAnnotations.size())
+                : null;
+
             //Loop through every annotation in the dictionary
             for (JsonElement jsonAnnotation : jsonAnnotations) {
-                //At the moment we were assuming that the name corresponds to tissue type so we will try to match it up with QuPath types and if none match, create a new one
-                String annotationName = jsonAnnotation.getAsJsonObject().get("name").getAsString();
-
-                // Dictionaries are created in the Annotation Service JS library. There isn't a clear convention on what they should mean but we will
-                // add a parameter to their imported objects so that they can be used later
-                String annotationLabel = jsonAnnotation.getAsJsonObject().get("label").getAsString();
-
-                // Dictionaries are created in the Annotation Service JS library. There isn't a clear convention on what they should mean but we will
-                // add a parameter to their imported objects so that they can be used later
-                String annotationUID = jsonAnnotation.getAsJsonObject().get("uid").getAsString();
-
-                JsonArray annotationColor = jsonAnnotation.getAsJsonObject().get("path")
-                    .getAsJsonObject().get("fillColor")
-                    .getAsJsonArray();
-
-                int redChannel = Math.round(annotationColor.get(0).getAsFloat() * 255);
-                int greenChannel = Math.round(annotationColor.get(1).getAsFloat() * 255);
-                int blueChannel = Math.round(annotationColor.get(2).getAsFloat() * 255);
-                int annotationColorInt = ((((redChannel << 8) + greenChannel) << 8) + blueChannel);
-
-                JsonArray segments = jsonAnnotation.getAsJsonObject()
-                    .get("path").getAsJsonObject()
-                    .get("segments").getAsJsonArray();
-                float[] xPoints = new float[segments.size()];
-                float[] yPoints = new float[segments.size()];
-
-                //Loop over all coordinates in annotation
-                int numOfPoints = 0;
-                //Loop through all the coordinates
-                for (JsonElement segment : segments) {
-                    JsonArray coordinates = segment.getAsJsonArray();
-                    // The 0th element of the array is the X coordinate
-                    xPoints[numOfPoints] = coordinates.get(0).getAsFloat();
-                    // The 1st element of the array is the Y coordinate
-                    yPoints[numOfPoints] = coordinates.get(1).getAsFloat();
-                    numOfPoints++;
+                ParsedAnnotation parsedAnnotation = parseAnnotation(jsonAnnotation.getAsJsonObject(), labelDictionary);
+                if (repairGeometry) {
+                    parsedAnnotations.add(parsedAnnotation);
+                } else {
+                    numImported++;
+                    if (!addAnnotation(parsedAnnotation, labelDictionary, imageData, hierarchy)) {
+                        numUnclassified++;
+                    }
                 }
+            }
 
-                PathAnnotationObject importedAnnotation;
-
-                // Import the annotation as a Point/Line/Polygon depending on number of coordinates / size
-                switch(numOfPoints) {
-                    case 1:
-                        // Only a single point was found, thus this is a point annotation
-                        PointsROI annotaionPoint = new PointsROI(xPoints[0], yPoints[0]);
-                        importedAnnotation = new PathAnnotationObject(annotaionPoint);
-                        break;
-                    case 2:
-                        // Two points were found, thus this is a line annotation
-                        LineROI annotationLine = new LineROI(xPoints[0],yPoints[0],xPoints[1],yPoints[1]);
-                        /**
-                         * If the line is really short then we will assume it's a point which was made into a line
-                         * by mistake
-                         */
-                        if (
-                            annotationLine.getScaledLength(
-                                imageData.getServer().getPixelWidthMicrons(),
-                                imageData.getServer().getPixelWidthMicrons()
-                            ) < 5
-                        ) {
-                            PointsROI annotationPointCentroid = new PointsROI(annotationLine.getCentroidX(),annotationLine.getCentroidY());
-                            importedAnnotation = new PathAnnotationObject(annotationPointCentroid);
-                        } else {
-                            importedAnnotation = new PathAnnotationObject(annotationLine);
-                        }
-                        break;
-                    default:
-                        // Multiple points were found, thus this is a polygon annotation
-                        PolygonROI annotaionPoly = new PolygonROI(xPoints, yPoints, -1, 0, 0);
-                        importedAnnotation = new PathAnnotationObject(annotaionPoly);
-                        break;
-                }
+            if (repairGeometry) {
+                /**
+                 * Polygons are checked on their raw coordinates before any ROIs are made. Each check is independent
+                 * of the others, so they are spread across all available cores.
+                 */
+                IntStream.range(0, parsedAnnotations.size()).parallel().forEach(i -> {
+                    ParsedAnnotation parsedAnnotation = parsedAnnotations.get(i);
+                    if (parsedAnnotation.vertices.numOfPoints > 2) {
+                        parsedAnnotation.validation = PolygonValidator.validate(parsedAnnotation.vertices);
+                    }
+                });
 
-                if (PathClassFactory.pathClassExists(annotationLabel)) {
-                    importedAnnotation.setPathClass(PathClassFactory.getPathClass(annotationLabel));
+                int numRepaired = 0;
+                int numDropped = 0;
+
+                for (ParsedAnnotation parsedAnnotation : parsedAnnotations) {
+                    if (parsedAnnotation.validation == PolygonValidator.Result.DROPPED) {
+                        numDropped++;
+                        continue;
+                    }
+                    if (parsedAnnotation.validation == PolygonValidator.Result.REPAIRED) {
+                        numRepaired++;
+                    }
+                    numImported++;
+                    if (!addAnnotation(parsedAnnotation, labelDictionary, imageData, hierarchy)) {
+                        numUnclassified++;
+                    }
                 }
 
-                importedAnnotation.setName(annotationUID);
-                importedAnnotation.setColorRGB(annotationColorInt);
-                hierarchy.addPathObject(importedAnnotation, true, false);
+                lastMessage = String.format(
+                    "Imported %d annotations, %d polygons repaired, %d polygons dropped",
+                    numImported,
+                    numRepaired,
+                    numDropped
+                );
+            } else {
+                lastMessage = String.format("Imported %d annotations", numImported);
             }
 
             hierarchy.fireHierarchyChangedEvent(this);
+
+            // Annotations whose label has no PathClass are still imported, but the user should know they lost it
+            if (numUnclassified > 0) {
+                lastMessage += String.format(
+                    ", %d left unclassified because their labels do not exist: %s",
+                    numUnclassified,
+                    String.join(", ", labelDictionary.getUnresolvedLabels())
+                );
+            }
+            List<PathClass> createdPathClasses = labelDictionary.getCreatedPathClasses();
+            if (!createdPathClasses.isEmpty()) {
+                lastMessage += String.format(", %d new classes created", createdPathClasses.size());
+                if (onPathClassesCreated != null) {
+                    onPathClassesCreated.accept(createdPathClasses);
+                }
+            }
+            logger.info(lastMessage);
         } catch(java.io.FileNotFoundException ex){
             lastMessage = "Error Reading JSON File";
             return false;
         }
         return true;
     }
+
+    /**
+     * @return True if the annotation was given a PathClass, false if its label did not resolve to one
+     */
+    private boolean addAnnotation(
+            ParsedAnnotation parsedAnnotation,
+            LabelDictionary labelDictionary,
+            ImageData imageData,
+            PathObjectHierarchy hierarchy
+    ) {
+        PathAnnotationObject importedAnnotation = createAnnotation(parsedAnnotation.vertices, imageData);
+
+        PathClass pathClass = labelDictionary.getPathClass(parsedAnnotation.labelId);
+        if (pathClass != null) {
+            importedAnnotation.setPathClass(pathClass);
+        }
+
+        importedAnnotation.setName(parsedAnnotation.uid);
+        importedAnnotation.setColorRGB(parsedAnnotation.colorRGB);
+        hierarchy.addPathObject(importedAnnotation, true, false);
+        return pathClass != null;
+    }
+
+    private ParsedAnnotation parseAnnotation(JsonObject jsonAnnotation, LabelDictionary labelDictionary) {
+        ParsedAnnotation parsedAnnotation = new ParsedAnnotation();
+
+        // Dictionaries are created in the Annotation Service JS library. There isn't a clear convention on what they should mean but we will
+        // add a parameter to their imported objects so that they can be used later
+        parsedAnnotation.labelId = labelDictionary.getLabelId(jsonAnnotation.get("label").getAsString());
+
+        // Dictionaries are created in the Annotation Service JS library. There isn't a clear convention on what they should mean but we will
+        // add a parameter to their imported objects so that they can be used later
+        parsedAnnotation.uid = jsonAnnotation.get("uid").getAsString();
+
+        JsonArray annotationColor = jsonAnnotation.get("path")
+            .getAsJsonObject().get("fillColor")
+            .getAsJsonArray();
+        parsedAnnotation.colorRGB = labelDictionary.getColorRGB(parsedAnnotation.labelId, annotationColor);
+
+        JsonArray segments = jsonAnnotation
+            .get("path").getAsJsonObject()
+            .get("segments").getAsJsonArray();
+        float[] xPoints = new float[segments.size()];
+        float[] yPoints = new float[segments.size()];
+
+        //Loop over all coordinates in annotation
+        int numOfPoints = 0;
+        //Loop through all the coordinates
+        for (JsonElement segment : segments) {
+            JsonArray coordinates = segment.getAsJsonArray();
+            // The 0th element of the array is the X coordinate
+            xPoints[numOfPoints] = coordinates.get(0).getAsFloat();
+            // The 1st element of the array is the Y coordinate
+            yPoints[numOfPoints] = coordinates.get(1).getAsFloat();
+            numOfPoints++;
+        }
+
+        parsedAnnotation.vertices = new PolygonValidator.Polygon(xPoints, yPoints, numOfPoints);
+        return parsedAnnotation;
+    }
+
+    private PathAnnotationObject createAnnotation(PolygonValidator.Polygon vertices, ImageData imageData) {
+        float[] xPoints = vertices.xPoints;
+        float[] yPoints = vertices.yPoints;
+        int numOfPoints = vertices.numOfPoints;
+
+        // Import the annotation as a Point/Line/Polygon depending on number of coordinates / size
+        switch(numOfPoints) {
+            case 1:
+                // Only a single point was found, thus this is a point annotation
+                PointsROI annotaionPoint = new PointsROI(xPoints[0], yPoints[0]);
+                return new PathAnnotationObject(annotaionPoint);
+            case 2:
+                // Two points were found, thus this is a line annotation
+                LineROI annotationLine = new LineROI(xPoints[0],yPoints[0],xPoints[1],yPoints[1]);
+                /**
+                 * If the line is really short then we will assume it's a point which was made into a line
+                 * by mistake
+                 */
+                if (
+                    annotationLine.getScaledLength(
+                        imageData.getServer().getPixelWidthMicrons(),
+                        imageData.getServer().getPixelWidthMicrons()
+                    ) < 5
+                ) {
+                    PointsROI annotationPointCentroid = new PointsROI(annotationLine.getCentroidX(),annotationLine.getCentroidY());
+                    return new PathAnnotationObject(annotationPointCentroid);
+                }
+                return new PathAnnotationObject(annotationLine);
+            default:
+                // A repaired self-intersecting polygon can be made of several rings, which a PolygonROI cannot hold
+                if (vertices.ringEnds != null) {
+                    PathShape annotationArea = PathROIToolsAwt.getShapeROI(PolygonValidator.toArea(vertices), -1, 0, 0);
+                    return new PathAnnotationObject(annotationArea);
+                }
+                // Repairs can leave fewer vertices than the arrays hold, and PolygonROI uses the whole array
+                if (numOfPoints < xPoints.length) {
+                    xPoints = Arrays.copyOf(xPoints, numOfPoints);
+                    yPoints = Arrays.copyOf(yPoints, numOfPoints);
+                }
+                // Multiple points were found, thus this is a polygon annotation
+                PolygonROI annotaionPoly = new PolygonROI(xPoints, yPoints, -1, 0, 0);
+                return new PathAnnotationObject(annotaionPoly);
+        }
+    }
 }
@@ -0,0 +1,123 @@
+package qupath.AnnotationExchangeExtension;
+
+import com.google.gson.JsonArray;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.classes.PathClassFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves the labels and colours of the annotations in a single import.
+ *
+ * Annotation files usually contain a very large number of annotations drawn from a small number of labels, so each
+ * distinct label is looked up in PathClassFactory only once and given a small int ID. Annotations then refer to their
+ * PathClass by that ID.
+ *
+ * Annotations with the same label almost always share a fill colour, so the last colour seen for each label is kept
+ * along with the raw number strings it was parsed from. A record whose strings match is given the packed colour
+ * without parsing any floats. This holds one colour per label, however many distinct colours the file contains.
+ *
+ * A new LabelDictionary should be made for each import, and it should not be shared between threads.
+ */
+public class LabelDictionary {
+
+    private final boolean createMissingClasses;
+    private final Map<String, Integer> labelIds = new HashMap<>();
+    private final List<PathClass> pathClasses = new ArrayList<>();
+    private final List<String> unresolvedLabels = new ArrayList<>();
+    private final List<PathClass> createdPathClasses = new ArrayList<>();
+
+    // The last colour seen for each label ID, and the red, green and blue strings it was parsed from
+    private final List<String[]> colorStrings = new ArrayList<>();
+    private int[] colors = new int[16];
+
+    /**
+     * @param createMissingClasses If true, labels that do not match an existing PathClass are created; otherwise
+     *                             they resolve to null and the annotation is left unclassified
+     */
+    public LabelDictionary(boolean createMissingClasses) {
+        this.createMissingClasses = createMissingClasses;
+    }
+
+    /**
+     * @param label The label of an annotation, as read from the JSON file
+     * @return The ID of the label, which can be passed to getPathClass
+     */
+    public int getLabelId(String label) {
+        Integer labelId = labelIds.get(label);
+        if (labelId == null) {
+            labelId = pathClasses.size();
+            if (PathClassFactory.pathClassExists(label)) {
+                pathClasses.add(PathClassFactory.getPathClass(label));
+            } else if (createMissingClasses) {
+                PathClass pathClass = PathClassFactory.getPathClass(label);
+                pathClasses.add(pathClass);
+                createdPathClasses.add(pathClass);
+            } else {
+                pathClasses.add(null);
+                unresolvedLabels.add(label);
+            }
+            colorStrings.add(new String[3]);
+            if (labelId == colors.length) {
+                colors = Arrays.copyOf(colors, labelId * 2);
+            }
+            labelIds.put(label, labelId);
+        }
+        return labelId;
+    }
+
+    /**
+     * @param labelId An ID returned by getLabelId
+     * @return The PathClass for the label, or null if it does not exist and missing classes are not being created
+     */
+    public PathClass getPathClass(int labelId) {
+        return pathClasses.get(labelId);
+    }
+
+    /**
+     * @param labelId The ID of the annotation's label, returned by getLabelId
+     * @param fillColor The fillColor of an annotation, as an array of red, green and blue values between 0 and 1
+     * @return The colour packed into an RGB int
+     */
+    public int getColorRGB(int labelId, JsonArray fillColor) {
+        // Numbers read by Gson keep their original string, so getAsString does not parse or allocate
+        String red = fillColor.get(0).getAsString();
+        String green = fillColor.get(1).getAsString();
+        String blue = fillColor.get(2).getAsString();
+
+        String[] lastStrings = colorStrings.get(labelId);
+        if (red.equals(lastStrings[0]) && green.equals(lastStrings[1]) && blue.equals(lastStrings[2])) {
+            return colors[labelId];
+        }
+
+        int redChannel = Math.round(Float.parseFloat(red) * 255);
+        int greenChannel = Math.round(Float.parseFloat(green) * 255);
+        int blueChannel = Math.round(Float.parseFloat(blue) * 255);
+        int colorRGB = ((((redChannel << 8) + greenChannel) << 8) + blueChannel);
+
+        lastStrings[0] = red;
+        lastStrings[1] = green;
+        lastStrings[2] = blue;
+        colors[labelId] = colorRGB;
+        return colorRGB;
+    }
+
+    /**
+     * @return The distinct labels seen so far that did not resolve to a PathClass, in the order they were first seen
+     */
+    public List<String> getUnresolvedLabels() {
+        return Collections.unmodifiableList(unresolvedLabels);
+    }
+
+    /**
+     * @return The PathClasses created for labels that did not already exist, in the order they were first seen
+     */
+    public List<PathClass> getCreatedPathClasses() {
+        return Collections.unmodifiableList(createdPathClasses);
+    }
+}
@@ -0,0 +1,70 @@
+package qupath.AnnotationExchangeExtension;
+
+import qupath.lib.objects.PathObject;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazily walks a PathObject hierarchy depth-first, visiting each parent before its children.
+ *
+ * The children of an object are copied into an array when the walk reaches that object, so the hierarchy can be
+ * changed between calls to next() without breaking the walk. Only the arrays for the objects on the path from the
+ * root to the current object are held at a time, so memory use is one reference per sibling along that path rather
+ * than a copy of the whole hierarchy. Children of detections are not visited, since these cannot contain
+ * annotations and would otherwise dominate the walk on slides with many cells.
+ *
+ * Copying the children reads the live collections, so callers on a background thread should hold the hierarchy's
+ * lock while creating the iterator and during each call to hasNext() and next().
+ */
+public class PathObjectHierarchyIterator implements Iterator<PathObject> {
+
+    private final Deque<Iterator<PathObject>> stack = new ArrayDeque<>();
+
+    /**
+     * @param rootObject The object to start the walk from; it is not itself returned by the iterator
+     */
+    public PathObjectHierarchyIterator(PathObject rootObject) {
+        pushChildren(rootObject);
+    }
+
+    private void pushChildren(PathObject pathObject) {
+        if (pathObject.hasChildren() && !pathObject.isDetection()) {
+            PathObject[] children = pathObject.getChildObjects().toArray(new PathObject[0]);
+            stack.push(Arrays.asList(children).iterator());
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!stack.isEmpty() && !stack.peek().hasNext()) {
+            stack.pop();
+        }
+        return !stack.isEmpty();
+    }
+
+    @Override
+    public PathObject next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        PathObject pathObject = stack.peek().next();
+        pushChildren(pathObject);
+        return pathObject;
+    }
+
+    /**
+     * @param rootObject The object to start the walk from
+     * @return An Iterable that can be used in a for-each loop to walk the hierarchy below the given object
+     */
+    public static Iterable<PathObject> descendants(PathObject rootObject) {
+        if (rootObject == null) {
+            return Collections.emptyList();
+        }
+        return () -> new PathObjectHierarchyIterator(rootObject);
+    }
+}
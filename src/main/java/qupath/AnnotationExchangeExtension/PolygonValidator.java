@@ -0,0 +1,366 @@
+package qupath.AnnotationExchangeExtension;
+
+import java.awt.geom.Area;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Checks and repairs polygon coordinates before they are turned into a PolygonROI.
+ *
+ * Polygons coming from the annotation service can contain repeated vertices, collapse to zero area, or cross over
+ * themselves. QuPath accepts these as they are, but they later make area and measurement calculations slow or wrong.
+ *
+ * Everything here works on the raw coordinate arrays and keeps no shared state, so many polygons can be validated
+ * at the same time.
+ */
+public class PolygonValidator {
+
+    /**
+     * Polygons with an area smaller than this (in square pixels) are treated as degenerate
+     */
+    private static final double MIN_AREA = 0.5;
+
+    public enum Result {
+        VALID,
+        REPAIRED,
+        DROPPED
+    }
+
+    /**
+     * The vertices of a single polygon; validate may replace the arrays or shrink numOfPoints when repairing it
+     */
+    public static class Polygon {
+        public float[] xPoints;
+        public float[] yPoints;
+        public int numOfPoints;
+        /**
+         * Null for a polygon with a single ring. When a repair leaves several rings, their vertices are stored one
+         * after another and this holds the index just past the end of each ring.
+         */
+        public int[] ringEnds;
+
+        public Polygon(float[] xPoints, float[] yPoints, int numOfPoints) {
+            this.xPoints = xPoints;
+            this.yPoints = yPoints;
+            this.numOfPoints = numOfPoints;
+        }
+    }
+
+    /**
+     * Removes duplicate vertices, drops polygons with fewer than three distinct vertices or no area, and splits
+     * self-intersecting polygons into the simple rings that cover the same region. Self-intersecting polygons that
+     * leave no ring with any area are dropped.
+     *
+     * @param polygon The polygon to check; repairs are made in place
+     * @return Whether the polygon was valid, repaired, or should be dropped
+     */
+    public static Result validate(Polygon polygon) {
+        boolean repaired = removeDuplicateVertices(polygon);
+
+        if (polygon.numOfPoints < 3) {
+            return Result.DROPPED;
+        }
+
+        // Checked before the area, since the lobes of a self-intersecting polygon can cancel each other out
+        if (isSelfIntersecting(polygon)) {
+            if (!repairSelfIntersection(polygon)) {
+                return Result.DROPPED;
+            }
+            repaired = true;
+        }
+
+        // Every ring kept by a repair has already been checked for area
+        if (polygon.ringEnds == null && Math.abs(signedArea(polygon)) < MIN_AREA) {
+            return Result.DROPPED;
+        }
+
+        return repaired ? Result.REPAIRED : Result.VALID;
+    }
+
+    /**
+     * Removes consecutive duplicate vertices, including a last vertex that repeats the first one
+     *
+     * @return True if any vertices were removed
+     */
+    private static boolean removeDuplicateVertices(Polygon polygon) {
+        float[] x = polygon.xPoints;
+        float[] y = polygon.yPoints;
+        int n = polygon.numOfPoints;
+        if (n == 0) {
+            return false;
+        }
+
+        int kept = 1;
+        for (int i = 1; i < n; i++) {
+            if (x[i] != x[kept - 1] || y[i] != y[kept - 1]) {
+                x[kept] = x[i];
+                y[kept] = y[i];
+                kept++;
+            }
+        }
+        while (kept > 1 && x[kept - 1] == x[0] && y[kept - 1] == y[0]) {
+            kept--;
+        }
+
+        polygon.numOfPoints = kept;
+        return kept != n;
+    }
+
+    /**
+     * @return The area of the polygon using the shoelace formula; the sign depends on the winding direction
+     */
+    private static double signedArea(Polygon polygon) {
+        float[] x = polygon.xPoints;
+        float[] y = polygon.yPoints;
+        int n = polygon.numOfPoints;
+        double area = 0;
+        for (int i = 0, j = n - 1; i < n; j = i++) {
+            area += (double) x[j] * y[i] - (double) x[i] * y[j];
+        }
+        return area / 2;
+    }
+
+    /**
+     * Checks whether any two non-adjacent edges of the polygon touch.
+     *
+     * Edges are sorted by their left-most x coordinate so that each edge only needs to be compared against the edges
+     * whose x range overlaps its own, rather than against every other edge.
+     */
+    private static boolean isSelfIntersecting(Polygon polygon) {
+        float[] x = polygon.xPoints;
+        float[] y = polygon.yPoints;
+        int n = polygon.numOfPoints;
+        if (n < 4) {
+            return false;
+        }
+
+        // Pack each edge's minimum x (as order-preserving int bits) with its index, so a primitive sort orders them
+        long[] edges = new long[n];
+        for (int i = 0; i < n; i++) {
+            int bits = Float.floatToIntBits(Math.min(x[i], x[(i + 1) % n]));
+            bits ^= (bits >> 31) & 0x7fffffff;
+            edges[i] = ((long) bits << 32) | i;
+        }
+        Arrays.sort(edges);
+
+        for (int a = 0; a < n; a++) {
+            int i = (int) edges[a];
+            int i2 = (i + 1) % n;
+            float maxX = Math.max(x[i], x[i2]);
+            for (int b = a + 1; b < n; b++) {
+                int j = (int) edges[b];
+                if (Math.min(x[j], x[(j + 1) % n]) > maxX) {
+                    break;
+                }
+                // Neighbouring edges always share a vertex
+                if (j == i2 || i == (j + 1) % n) {
+                    continue;
+                }
+                if (segmentsIntersect(x[i], y[i], x[i2], y[i2], x[j], y[j], x[(j + 1) % n], y[(j + 1) % n])) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean segmentsIntersect(
+            double x1, double y1, double x2, double y2,
+            double x3, double y3, double x4, double y4
+    ) {
+        int o1 = orientation(x1, y1, x2, y2, x3, y3);
+        int o2 = orientation(x1, y1, x2, y2, x4, y4);
+        int o3 = orientation(x3, y3, x4, y4, x1, y1);
+        int o4 = orientation(x3, y3, x4, y4, x2, y2);
+
+        if (o1 != o2 && o3 != o4) {
+            return true;
+        }
+        // Collinear edges only count if they overlap
+        return (o1 == 0 && onSegment(x1, y1, x2, y2, x3, y3))
+            || (o2 == 0 && onSegment(x1, y1, x2, y2, x4, y4))
+            || (o3 == 0 && onSegment(x3, y3, x4, y4, x1, y1))
+            || (o4 == 0 && onSegment(x3, y3, x4, y4, x2, y2));
+    }
+
+    private static int orientation(double x1, double y1, double x2, double y2, double x3, double y3) {
+        return (int) Math.signum((x2 - x1) * (y3 - y1) - (y2 - y1) * (x3 - x1));
+    }
+
+    private static boolean onSegment(double x1, double y1, double x2, double y2, double px, double py) {
+        return px >= Math.min(x1, x2) && px <= Math.max(x1, x2)
+            && py >= Math.min(y1, y2) && py <= Math.max(y1, y2);
+    }
+
+    /**
+     * Resolves the self-intersections using java.awt.geom.Area, with the same non-zero winding rule QuPath uses to
+     * fill polygons. Every ring Area produces is kept (e.g. both lobes of a twisted bow-tie), including holes; only
+     * rings too small to have any area are discarded.
+     *
+     * Area keeps rings that touch themselves at a single vertex (e.g. a notch pinched shut at its opening), so these
+     * are split at the repeated vertex into simple rings. Filled with the even-odd rule, the split rings cover the
+     * same region as the original ring.
+     *
+     * @return False if no usable ring was left
+     */
+    private static boolean repairSelfIntersection(Polygon polygon) {
+        Path2D.Float path = new Path2D.Float(Path2D.WIND_NON_ZERO, polygon.numOfPoints);
+        path.moveTo(polygon.xPoints[0], polygon.yPoints[0]);
+        for (int i = 1; i < polygon.numOfPoints; i++) {
+            path.lineTo(polygon.xPoints[i], polygon.yPoints[i]);
+        }
+        path.closePath();
+
+        RingCollector rings = new RingCollector(polygon.numOfPoints);
+
+        float[] ringX = new float[polygon.numOfPoints];
+        float[] ringY = new float[polygon.numOfPoints];
+        int ringSize = 0;
+        float[] coords = new float[6];
+
+        for (PathIterator iterator = new Area(path).getPathIterator(null); !iterator.isDone(); iterator.next()) {
+            int segmentType = iterator.currentSegment(coords);
+            if (segmentType == PathIterator.SEG_MOVETO || segmentType == PathIterator.SEG_LINETO) {
+                // A new ring starts at each move
+                if (segmentType == PathIterator.SEG_MOVETO) {
+                    ringSize = 0;
+                }
+                if (ringSize == ringX.length) {
+                    ringX = Arrays.copyOf(ringX, ringSize * 2);
+                    ringY = Arrays.copyOf(ringY, ringSize * 2);
+                }
+                ringX[ringSize] = coords[0];
+                ringY[ringSize] = coords[1];
+                ringSize++;
+            } else if (segmentType == PathIterator.SEG_CLOSE) {
+                Polygon ring = new Polygon(Arrays.copyOf(ringX, ringSize), Arrays.copyOf(ringY, ringSize), ringSize);
+                removeDuplicateVertices(ring);
+                splitAtRepeatedVertices(ring, rings);
+            }
+        }
+
+        if (rings.numRings == 0) {
+            return false;
+        }
+
+        polygon.xPoints = Arrays.copyOf(rings.xPoints, rings.numOfPoints);
+        polygon.yPoints = Arrays.copyOf(rings.yPoints, rings.numOfPoints);
+        polygon.numOfPoints = rings.numOfPoints;
+        polygon.ringEnds = rings.numRings > 1
+            ? Arrays.copyOf(rings.ringEnds, rings.numRings)
+            : null;
+        return true;
+    }
+
+    /**
+     * Walks the ring keeping a stack of the vertices visited so far. When a vertex that is already on the stack is
+     * reached again, the vertices since its first visit form a closed sub-ring, which is taken off the stack and
+     * collected. Whatever is left on the stack at the end is the last ring.
+     */
+    private static void splitAtRepeatedVertices(Polygon ring, RingCollector rings) {
+        int n = ring.numOfPoints;
+        int[] stack = new int[n];
+        int top = 0;
+        Map<Long, Integer> stackPositions = new HashMap<>();
+
+        for (int i = 0; i < n; i++) {
+            long key = vertexKey(ring.xPoints[i], ring.yPoints[i]);
+            Integer position = stackPositions.get(key);
+            if (position == null) {
+                stackPositions.put(key, top);
+                stack[top++] = i;
+                continue;
+            }
+            rings.addRing(ring, stack, position, top);
+            // The repeated vertex stays on the stack, since it is also part of the ring that continues from it
+            for (int k = position + 1; k < top; k++) {
+                stackPositions.remove(vertexKey(ring.xPoints[stack[k]], ring.yPoints[stack[k]]));
+            }
+            top = position + 1;
+        }
+        rings.addRing(ring, stack, 0, top);
+    }
+
+    private static long vertexKey(float x, float y) {
+        // Adding 0 turns -0.0 into 0.0, so that both give the same key
+        return ((long) Float.floatToIntBits(x + 0.0f) << 32) | (Float.floatToIntBits(y + 0.0f) & 0xffffffffL);
+    }
+
+    /**
+     * Collects the rings that make up a repaired polygon into one pair of coordinate arrays
+     */
+    private static class RingCollector {
+        float[] xPoints;
+        float[] yPoints;
+        int numOfPoints = 0;
+        int[] ringEnds = new int[4];
+        int numRings = 0;
+
+        RingCollector(int capacity) {
+            xPoints = new float[capacity];
+            yPoints = new float[capacity];
+        }
+
+        /**
+         * Adds the vertices of the ring at ring.xPoints[indices[from]] ... ring.xPoints[indices[to - 1]], unless the
+         * ring has too few vertices or too little area to be kept
+         */
+        void addRing(Polygon ring, int[] indices, int from, int to) {
+            int size = to - from;
+            if (size < 3) {
+                return;
+            }
+            double area = 0;
+            for (int i = from, j = to - 1; i < to; j = i++) {
+                area += (double) ring.xPoints[indices[j]] * ring.yPoints[indices[i]]
+                    - (double) ring.xPoints[indices[i]] * ring.yPoints[indices[j]];
+            }
+            if (Math.abs(area / 2) < MIN_AREA) {
+                return;
+            }
+
+            if (numOfPoints + size > xPoints.length) {
+                int capacity = Math.max(xPoints.length * 2, numOfPoints + size);
+                xPoints = Arrays.copyOf(xPoints, capacity);
+                yPoints = Arrays.copyOf(yPoints, capacity);
+            }
+            for (int i = from; i < to; i++) {
+                xPoints[numOfPoints] = ring.xPoints[indices[i]];
+                yPoints[numOfPoints] = ring.yPoints[indices[i]];
+                numOfPoints++;
+            }
+
+            if (numRings == ringEnds.length) {
+                ringEnds = Arrays.copyOf(ringEnds, numRings * 2);
+            }
+            ringEnds[numRings++] = numOfPoints;
+        }
+    }
+
+    /**
+     * Builds the region covered by a polygon, which may be made of several rings after being repaired. Rings are
+     * filled with the even-odd rule, so a ring inside another ring is a hole.
+     *
+     * @param polygon The polygon to convert
+     * @return The region covered by the polygon
+     */
+    public static Area toArea(Polygon polygon) {
+        Path2D.Float path = new Path2D.Float(Path2D.WIND_EVEN_ODD, polygon.numOfPoints);
+        int start = 0;
+        int[] ringEnds = polygon.ringEnds != null
+            ? polygon.ringEnds
+            : new int[]{polygon.numOfPoints};
+        for (int end : ringEnds) {
+            path.moveTo(polygon.xPoints[start], polygon.yPoints[start]);
+            for (int i = start + 1; i < end; i++) {
+                path.lineTo(polygon.xPoints[i], polygon.yPoints[i]);
+            }
+            path.closePath();
+            start = end;
+        }
+        return new Area(path);
+    }
+}
@@ -0,0 +1,205 @@
+package qupath.AnnotationExchangeExtension;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.classes.PathClassFactory;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures label and colour resolution on an annotation file, comparing how the importer resolved them for every
+ * record before LabelDictionary with resolving them through a LabelDictionary.
+ *
+ * The file is parsed once the same way the importer parses it, then label resolution and colour resolution are each
+ * timed on their own over every record in it. Building ROIs and adding them to the hierarchy are left out. Run with
+ * QuPath and Gson on the classpath:
+ *
+ *     java qupath.AnnotationExchangeExtension.LabelDictionaryBenchmark file.json [numRecords]
+ *
+ * If the file does not exist, a label-heavy file with numRecords annotations (1,000,000 by default) drawn from 20
+ * labels is generated first. Each label has its own fill colour, as in files from the annotation service, and half of
+ * the labels are registered as classes before the run.
+ */
+public class LabelDictionaryBenchmark {
+
+    private static final int NUM_LABELS = 20;
+    private static final int NUM_VERTICES = 8;
+    private static final int NUM_RUNS = 11;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: LabelDictionaryBenchmark file.json [numRecords]");
+            return;
+        }
+        File file = new File(args[0]);
+        if (!file.exists()) {
+            int numRecords = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+            writeLabelHeavyFile(file, numRecords);
+        }
+
+        for (int i = 0; i < NUM_LABELS; i += 2) {
+            PathClassFactory.getPathClass(labelName(i));
+        }
+
+        long start = System.nanoTime();
+        JsonArray dictionaries;
+        try (JsonReader jsonReader = new JsonReader(new FileReader(file))) {
+            dictionaries = new JsonParser().parse(jsonReader).getAsJsonObject().get("dictionaries").getAsJsonArray();
+        }
+        long parseTime = System.nanoTime() - start;
+        int numRecords = dictionaries.size();
+
+        long[] labelsBefore = new long[NUM_RUNS];
+        long[] labelsAfter = new long[NUM_RUNS];
+        long[] colorsBefore = new long[NUM_RUNS];
+        long[] colorsAfter = new long[NUM_RUNS];
+        long checksum = 0;
+
+        // Alternate between the two so that neither benefits from running later in a warmer JVM
+        for (int run = 0; run < NUM_RUNS; run++) {
+            start = System.nanoTime();
+            checksum += resolveLabelsPerRecord(dictionaries);
+            labelsBefore[run] = System.nanoTime() - start;
+
+            LabelDictionary labelDictionary = new LabelDictionary(false);
+            int[] labelIds = new int[numRecords];
+            start = System.nanoTime();
+            checksum += resolveLabelsWithDictionary(dictionaries, labelDictionary, labelIds);
+            labelsAfter[run] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            checksum += resolveColorsPerRecord(dictionaries);
+            colorsBefore[run] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            checksum += resolveColorsWithDictionary(dictionaries, labelDictionary, labelIds);
+            colorsAfter[run] = System.nanoTime() - start;
+        }
+
+        System.out.printf("File: %s (%d records, %d MB), parsed in %d ms (checksum %d)%n",
+            file, numRecords, file.length() >> 20, parseTime / 1_000_000, checksum);
+        System.out.printf("Labels, per record:      %6.1f ns/record%n", median(labelsBefore) / numRecords);
+        System.out.printf("Labels, LabelDictionary: %6.1f ns/record%n", median(labelsAfter) / numRecords);
+        System.out.printf("Colours, per record:     %6.1f ns/record%n", median(colorsBefore) / numRecords);
+        System.out.printf("Colours, LabelDictionary:%6.1f ns/record%n", median(colorsAfter) / numRecords);
+    }
+
+    private static JsonObject record(JsonArray dictionaries, int i) {
+        return dictionaries.get(i).getAsJsonObject();
+    }
+
+    private static JsonArray fillColor(JsonObject record) {
+        return record.get("path").getAsJsonObject().get("fillColor").getAsJsonArray();
+    }
+
+    private static long resolveLabelsPerRecord(JsonArray dictionaries) {
+        long resolved = 0;
+        for (JsonElement dictionary : dictionaries) {
+            String label = dictionary.getAsJsonObject().get("label").getAsString();
+            if (PathClassFactory.pathClassExists(label)) {
+                PathClass pathClass = PathClassFactory.getPathClass(label);
+                resolved += pathClass.hashCode() & 1;
+            }
+        }
+        return resolved;
+    }
+
+    private static long resolveLabelsWithDictionary(
+            JsonArray dictionaries,
+            LabelDictionary labelDictionary,
+            int[] labelIds
+    ) {
+        long resolved = 0;
+        for (int i = 0; i < labelIds.length; i++) {
+            labelIds[i] = labelDictionary.getLabelId(record(dictionaries, i).get("label").getAsString());
+            PathClass pathClass = labelDictionary.getPathClass(labelIds[i]);
+            if (pathClass != null) {
+                resolved += pathClass.hashCode() & 1;
+            }
+        }
+        return resolved;
+    }
+
+    private static long resolveColorsPerRecord(JsonArray dictionaries) {
+        long sum = 0;
+        for (JsonElement dictionary : dictionaries) {
+            JsonArray annotationColor = fillColor(dictionary.getAsJsonObject());
+            int redChannel = Math.round(annotationColor.get(0).getAsFloat() * 255);
+            int greenChannel = Math.round(annotationColor.get(1).getAsFloat() * 255);
+            int blueChannel = Math.round(annotationColor.get(2).getAsFloat() * 255);
+            sum += ((((redChannel << 8) + greenChannel) << 8) + blueChannel);
+        }
+        return sum;
+    }
+
+    private static long resolveColorsWithDictionary(
+            JsonArray dictionaries,
+            LabelDictionary labelDictionary,
+            int[] labelIds
+    ) {
+        long sum = 0;
+        for (int i = 0; i < labelIds.length; i++) {
+            sum += labelDictionary.getColorRGB(labelIds[i], fillColor(record(dictionaries, i)));
+        }
+        return sum;
+    }
+
+    private static String labelName(int i) {
+        return "Benchmark label " + i;
+    }
+
+    private static void writeLabelHeavyFile(File file, int numRecords) throws IOException {
+        Random random = new Random(42);
+        try (JsonWriter jsonWriter = new JsonWriter(new FileWriter(file))) {
+            jsonWriter.beginObject();
+            jsonWriter.name("SourceSlide").value("benchmark.svs");
+            jsonWriter.name("dictionaries").beginArray();
+            for (int i = 0; i < numRecords; i++) {
+                int label = random.nextInt(NUM_LABELS);
+                String uid = Integer.toString(i);
+                jsonWriter.beginObject();
+                jsonWriter.name("uid").value(uid);
+                jsonWriter.name("name").value(uid);
+                jsonWriter.name("label").value(labelName(label));
+                jsonWriter.name("path").beginObject();
+                jsonWriter.name("segments").beginArray();
+                double centreX = random.nextDouble() * 50000;
+                double centreY = random.nextDouble() * 50000;
+                for (int v = 0; v < NUM_VERTICES; v++) {
+                    double angle = 2 * Math.PI * v / NUM_VERTICES;
+                    jsonWriter.beginArray()
+                        .value(centreX + 20 * Math.cos(angle))
+                        .value(centreY + 20 * Math.sin(angle))
+                        .endArray();
+                }
+                jsonWriter.endArray();
+                jsonWriter.name("fillColor").beginArray()
+                    .value((label % 5) / 4.0)
+                    .value((label / 5) / 3.0)
+                    .value(label / 19.0)
+                    .value(0.5)
+                    .endArray();
+                jsonWriter.endObject();
+                jsonWriter.endObject();
+            }
+            jsonWriter.endArray();
+            jsonWriter.endObject();
+        }
+    }
+
+    private static double median(long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
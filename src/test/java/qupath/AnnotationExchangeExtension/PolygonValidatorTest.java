@@ -0,0 +1,158 @@
+package qupath.AnnotationExchangeExtension;
+
+import org.junit.Test;
+
+import java.awt.geom.PathIterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PolygonValidatorTest {
+
+    private static PolygonValidator.Polygon polygon(float... coordinates) {
+        int numOfPoints = coordinates.length / 2;
+        float[] xPoints = new float[numOfPoints];
+        float[] yPoints = new float[numOfPoints];
+        for (int i = 0; i < numOfPoints; i++) {
+            xPoints[i] = coordinates[i * 2];
+            yPoints[i] = coordinates[i * 2 + 1];
+        }
+        return new PolygonValidator.Polygon(xPoints, yPoints, numOfPoints);
+    }
+
+    /**
+     * @return The area of the region covered by the polygon, with holes subtracted
+     */
+    private static double area(PolygonValidator.Polygon polygon) {
+        // Area gives holes the opposite winding direction to the rings around them, so signed areas add up correctly
+        double area = 0;
+        double ringArea = 0;
+        double startX = 0, startY = 0, lastX = 0, lastY = 0;
+        double[] coords = new double[6];
+        for (PathIterator iterator = PolygonValidator.toArea(polygon).getPathIterator(null); !iterator.isDone(); iterator.next()) {
+            int segmentType = iterator.currentSegment(coords);
+            if (segmentType == PathIterator.SEG_MOVETO) {
+                startX = lastX = coords[0];
+                startY = lastY = coords[1];
+                ringArea = 0;
+            } else if (segmentType == PathIterator.SEG_LINETO) {
+                ringArea += lastX * coords[1] - coords[0] * lastY;
+                lastX = coords[0];
+                lastY = coords[1];
+            } else if (segmentType == PathIterator.SEG_CLOSE) {
+                ringArea += lastX * startY - startX * lastY;
+                area += ringArea / 2;
+            }
+        }
+        return Math.abs(area);
+    }
+
+    private static int numRings(PolygonValidator.Polygon polygon) {
+        return polygon.ringEnds == null ? 1 : polygon.ringEnds.length;
+    }
+
+    private static boolean containsVertex(PolygonValidator.Polygon polygon, float x, float y) {
+        for (int i = 0; i < polygon.numOfPoints; i++) {
+            if (polygon.xPoints[i] == x && polygon.yPoints[i] == y) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void squareIsValid() {
+        PolygonValidator.Polygon square = polygon(0, 0, 10, 0, 10, 10, 0, 10);
+        assertEquals(PolygonValidator.Result.VALID, PolygonValidator.validate(square));
+        assertEquals(4, square.numOfPoints);
+    }
+
+    @Test
+    public void duplicateVerticesAreRemoved() {
+        PolygonValidator.Polygon square = polygon(0, 0, 10, 0, 10, 0, 10, 10, 10, 10, 0, 10);
+        assertEquals(PolygonValidator.Result.REPAIRED, PolygonValidator.validate(square));
+        assertEquals(4, square.numOfPoints);
+    }
+
+    @Test
+    public void closingVertexIsRemoved() {
+        PolygonValidator.Polygon square = polygon(0, 0, 10, 0, 10, 10, 0, 10, 0, 0);
+        assertEquals(PolygonValidator.Result.REPAIRED, PolygonValidator.validate(square));
+        assertEquals(4, square.numOfPoints);
+    }
+
+    @Test
+    public void bowTieKeepsBothLobes() {
+        PolygonValidator.Polygon bowTie = polygon(0, 0, 20, 10, 20, 0, 0, 20);
+        assertEquals(PolygonValidator.Result.REPAIRED, PolygonValidator.validate(bowTie));
+        assertEquals(2, numRings(bowTie));
+        // The lobes meet at (40/3, 20/3); the left lobe covers 400/3 and the right lobe 100/3
+        assertEquals(500.0 / 3, area(bowTie), 1e-3);
+        assertTrue(containsVertex(bowTie, 0, 20));
+        assertTrue(containsVertex(bowTie, 20, 0));
+    }
+
+    @Test
+    public void figureEightKeepsBothEqualLobes() {
+        PolygonValidator.Polygon figureEight = polygon(0, 0, 100, 100, 100, 0, 0, 100);
+        assertEquals(PolygonValidator.Result.REPAIRED, PolygonValidator.validate(figureEight));
+        assertEquals(2, numRings(figureEight));
+        assertEquals(5000, area(figureEight), 1e-3);
+    }
+
+    @Test
+    public void outwardLoopIsKept() {
+        // The right side of the square crosses itself at (110, 50), making a small loop outside the square
+        PolygonValidator.Polygon square = polygon(0, 0, 100, 0, 100, 40, 120, 60, 120, 40, 100, 60, 100, 100, 0, 100);
+        assertEquals(PolygonValidator.Result.REPAIRED, PolygonValidator.validate(square));
+        assertEquals(10200, area(square), 1e-3);
+        assertTrue(containsVertex(square, 120, 60));
+        assertTrue(containsVertex(square, 120, 40));
+    }
+
+    @Test
+    public void collinearSpikeIsRemoved() {
+        // The edge back down from (10, 10) to (10, 5) runs along the edge that went up to it
+        PolygonValidator.Polygon spike = polygon(0, 0, 10, 0, 10, 10, 10, 5, 0, 10);
+        assertEquals(PolygonValidator.Result.REPAIRED, PolygonValidator.validate(spike));
+        assertFalse(containsVertex(spike, 10, 10));
+        assertEquals(75, area(spike), 1e-3);
+    }
+
+    @Test
+    public void pinchedVertexIsSplitIntoSimpleRings() {
+        // A notch from the top edge down to (6, 5) and (4, 5), pinched shut where it meets the edge at (5, 10)
+        PolygonValidator.Polygon pinched = polygon(0, 0, 10, 0, 10, 10, 5, 10, 6, 5, 4, 5, 5, 10, 0, 10);
+        assertEquals(PolygonValidator.Result.REPAIRED, PolygonValidator.validate(pinched));
+        assertEquals(2, numRings(pinched));
+        assertEquals(95, area(pinched), 1e-3);
+    }
+
+    @Test
+    public void zeroAreaIsDropped() {
+        PolygonValidator.Polygon line = polygon(0, 0, 5, 5, 10, 10);
+        assertEquals(PolygonValidator.Result.DROPPED, PolygonValidator.validate(line));
+    }
+
+    @Test
+    public void tooFewDistinctVerticesIsDropped() {
+        PolygonValidator.Polygon collapsed = polygon(3, 3, 3, 3, 4, 4, 3, 3);
+        assertEquals(PolygonValidator.Result.DROPPED, PolygonValidator.validate(collapsed));
+    }
+
+    @Test
+    public void negativeCoordinatesAreValid() {
+        PolygonValidator.Polygon square = polygon(-10, -10, 0, -10, 0, 0, -10, 0);
+        assertEquals(PolygonValidator.Result.VALID, PolygonValidator.validate(square));
+    }
+
+    @Test
+    public void negativeCoordinateBowTieIsRepaired() {
+        // Spans zero on the x axis, so edges with negative and positive minimum x are sorted together
+        PolygonValidator.Polygon bowTie = polygon(-10, -10, 10, 10, 10, -10, -10, 10);
+        assertEquals(PolygonValidator.Result.REPAIRED, PolygonValidator.validate(bowTie));
+        assertEquals(2, numRings(bowTie));
+        assertEquals(200, area(bowTie), 1e-3);
+    }
+}